@@ -0,0 +1,337 @@
+/* BookingStore.java - indexed booking store replacing the bookings.txt log.
+ *
+ * Bookings are appended as fixed-width binary records to numbered segment files
+ * in the bookings directory. When the active segment is full it is sealed and a
+ * new one started; once enough sealed segments pile up a background thread
+ * merges them into one. Every segment starts with a header giving the lowest
+ * segment number it covers, so a merge interrupted part way never loads
+ * the same booking twice.
+ *
+ * All records are indexed in memory by user and by departure so lookups only
+ * touch the bookings that match.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.DayOfWeek;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BookingStore implements Closeable {
+
+    /*********************** Data record definition ************************/
+    static class BookingRcd {
+        int rID, userID;
+        boolean saver;
+        String day;
+        short time;     // minutes after midnight, NO_TIME for regular tickets
+
+        public BookingRcd(int r, int u, boolean s, String d, short t) {
+            rID = r; userID = u; saver = s; day = d; time = t;
+        }
+
+        public String timeStr() {
+            return time == NO_TIME ? "" : String.format("%02d:%02d", time / 60, time % 60);
+        }
+
+        public String toString() {
+            if (time == NO_TIME)
+                return String.format("%d %s", rID, day);
+            return String.format("%d %s %s", rID, day, timeStr());
+        }
+    }
+
+    /************************* Record layout & limits **************************/
+    public static final short NO_TIME = -1;
+    public static final int DAYSZ = 10;
+    // rID, userID, saver flag, day (ASCII, space padded), time
+    public static final int RECSZ = 4 + 4 + 1 + DAYSZ + 2;
+    public static final int MAGIC = 0x42524B31;  // "BRK1"
+    public static final int HDRSZ = 4 + 4;       // magic, first segment covered
+    public static final int SEGMAX = 512;        // records per segment before rolling
+    public static final int COMPACT_AT = 4;      // sealed segments that trigger a merge
+
+    private final Path dir;
+    private final TreeMap<Integer, Path> sealed = new TreeMap<Integer, Path>();
+    private FileChannel active;
+    private int activeSeq, activeCount;
+    private final Map<Integer, List<BookingRcd>> byUser = new HashMap<Integer, List<BookingRcd>>();
+    private final Map<String, List<BookingRcd>> byDeparture = new HashMap<String, List<BookingRcd>>();
+    private int total = 0;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Booking-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean compacting = false;
+
+    public BookingStore(String dirName) throws IOException {
+        dir = Paths.get(dirName);
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /************************ Index helper functions *************************/
+    private static String departureKey(int rID, String day, short time) {
+        return rID + "|" + day + "|" + time;
+    }
+
+    private void index(BookingRcd rcd) {
+        byUser.computeIfAbsent(rcd.userID, k -> new ArrayList<BookingRcd>()).add(rcd);
+        byDeparture.computeIfAbsent(departureKey(rcd.rID, rcd.day, rcd.time),
+            k -> new ArrayList<BookingRcd>()).add(rcd);
+        total++;
+    }
+
+    // "HH:MM" to minutes after midnight, NO_TIME if blank; throws if not a valid time
+    public static short parseTime(String time) {
+        if (time == null || time.trim().isEmpty())
+            return NO_TIME;
+        String[] hm = time.trim().split(":");
+        int h = Integer.parseInt(hm[0]), m = Integer.parseInt(hm[1]);
+        if (hm.length != 2 || h < 0 || h > 23 || m < 0 || m > 59)
+            throw new IllegalArgumentException("Bad time: " + time);
+        return (short) (h * 60 + m);
+    }
+
+    // Day name in the form new bookings use, e.g. "monday" to "Monday"; throws if not a day
+    public static String parseDayName(String day) {
+        String n = DayOfWeek.valueOf(day.trim().toUpperCase()).toString();
+        return n.charAt(0) + n.substring(1).toLowerCase();
+    }
+
+    /************************** Record encoding ****************************/
+    private static void encode(ByteBuffer buf, BookingRcd rcd) {
+        byte[] day = Arrays.copyOf(rcd.day.getBytes(StandardCharsets.US_ASCII), DAYSZ);
+        for (int i = Math.min(rcd.day.length(), DAYSZ); i < DAYSZ; i++)
+            day[i] = ' ';
+        buf.putInt(rcd.rID).putInt(rcd.userID).put((byte) (rcd.saver ? 1 : 0))
+            .put(day).putShort(rcd.time);
+    }
+
+    private static BookingRcd decode(ByteBuffer buf) {
+        int rID = buf.getInt(), uID = buf.getInt();
+        boolean saver = buf.get() != 0;
+        byte[] day = new byte[DAYSZ];
+        buf.get(day);
+        short time = buf.getShort();
+        return new BookingRcd(rID, uID, saver, new String(day, StandardCharsets.US_ASCII).trim(), time);
+    }
+
+    /************************** Segment handling ****************************/
+    private Path segPath(int seq) {
+        return dir.resolve(String.format("bookings-%06d.seg", seq));
+    }
+
+    private static int segSeq(Path p) {
+        String n = p.getFileName().toString();
+        return Integer.parseInt(n.substring("bookings-".length(), n.length() - ".seg".length()));
+    }
+
+    private static ByteBuffer header(int firstSeq) {
+        ByteBuffer hdr = ByteBuffer.allocate(HDRSZ);
+        hdr.putInt(MAGIC).putInt(firstSeq);
+        hdr.flip();
+        return hdr;
+    }
+
+    // Read a segment's header and records; a torn record at the tail is ignored
+    private static int readSegment(Path p, List<BookingRcd> into) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(p));
+        if (buf.remaining() < HDRSZ || buf.getInt() != MAGIC)
+            throw new IOException("Not a booking segment: " + p);
+        int firstSeq = buf.getInt();
+        while (buf.remaining() >= RECSZ)
+            into.add(decode(buf));
+        return firstSeq;
+    }
+
+    private void load() throws IOException {
+        TreeMap<Integer, Path> segs = new TreeMap<Integer, Path>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "bookings-*.seg")) {
+            for (Path p: ds)
+                segs.put(segSeq(p), p);
+        }
+        // a merged segment covers every lower-numbered one still on disk
+        TreeMap<Integer, List<BookingRcd>> live = new TreeMap<Integer, List<BookingRcd>>();
+        // a newest segment without a full header was cut short while being created
+        if (!segs.isEmpty() && Files.size(segs.lastEntry().getValue()) < HDRSZ) {
+            System.err.println("Removing incomplete booking segment " + segs.lastEntry().getValue());
+            Files.delete(segs.pollLastEntry().getValue());
+        }
+        for (Map.Entry<Integer, Path> e: segs.entrySet()) {
+            List<BookingRcd> rcds = new ArrayList<BookingRcd>();
+            int firstSeq = readSegment(e.getValue(), rcds);
+            for (Integer old: new ArrayList<Integer>(live.tailMap(firstSeq).keySet())) {
+                live.remove(old);
+                Files.deleteIfExists(segPath(old));
+            }
+            live.put(e.getKey(), rcds);
+        }
+        for (List<BookingRcd> rcds: live.values())
+            for (BookingRcd rcd: rcds)
+                index(rcd);
+
+        if (live.isEmpty()) {
+            openActive(1);
+        } else {
+            // keep appending to the newest segment, trimming any torn record
+            activeSeq = live.lastKey();
+            activeCount = live.get(activeSeq).size();
+            live.remove(activeSeq);
+            for (Integer seq: live.keySet())
+                sealed.put(seq, segPath(seq));
+            active = FileChannel.open(segPath(activeSeq), StandardOpenOption.WRITE);
+            active.truncate(HDRSZ + (long) activeCount * RECSZ);
+            active.position(active.size());
+        }
+    }
+
+    // Start a new empty segment; its header is in place before the file appears
+    private void openActive(int seq) throws IOException {
+        activeSeq = seq;
+        activeCount = 0;
+        writeSegment(dir.resolve("new.tmp"), seq, seq, Collections.<BookingRcd>emptyList());
+        active = FileChannel.open(segPath(seq), StandardOpenOption.WRITE);
+        active.position(active.size());
+    }
+
+    // Seal the full segment, start the next one and merge in the background if needed
+    private void roll() throws IOException {
+        active.force(true);
+        active.close();
+        sealed.put(activeSeq, segPath(activeSeq));
+        openActive(activeSeq + 1);
+        if (sealed.size() >= COMPACT_AT && !compacting) {
+            compacting = true;
+            final TreeMap<Integer, Path> toMerge = new TreeMap<Integer, Path>(sealed);
+            compactor.submit(() -> compact(toMerge));
+        }
+    }
+
+    // Write a whole segment to a temporary file, then move it into place in one step
+    private void writeSegment(Path tmp, int firstSeq, int seq, List<BookingRcd> rcds) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HDRSZ + rcds.size() * RECSZ);
+        buf.put(header(firstSeq));
+        for (BookingRcd rcd: rcds)
+            encode(buf, rcd);
+        buf.flip();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining())
+                out.write(buf);
+            out.force(true);
+        }
+        Files.move(tmp, segPath(seq), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Merge sealed segments into one file named after the newest of them. Sealed
+     * segments are never written again, so the copy runs without the store lock. */
+    private void compact(TreeMap<Integer, Path> toMerge) {
+        int first = toMerge.firstKey(), last = toMerge.lastKey();
+        try {
+            List<BookingRcd> rcds = new ArrayList<BookingRcd>();
+            for (Path p: toMerge.values())
+                readSegment(p, rcds);
+            writeSegment(dir.resolve("compact.tmp"), first, last, rcds);
+            synchronized (this) {
+                for (Integer seq: toMerge.keySet())
+                    sealed.remove(seq);
+                sealed.put(last, segPath(last));
+            }
+            for (Integer seq: toMerge.headMap(last).keySet())
+                Files.deleteIfExists(segPath(seq));
+            System.out.printf("Compacted booking segments %d-%d (%d records)\n", first, last, rcds.size());
+        } catch (IOException ex) {
+            System.err.println("Booking compaction failed: " + ex);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /*************************** Public interface ****************************/
+    /* Append a booking and index it. */
+    public synchronized void add(BookingRcd rcd) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(RECSZ);
+        encode(buf, rcd);
+        buf.flip();
+        while (buf.hasRemaining())
+            active.write(buf);
+        activeCount++;
+        index(rcd);
+        if (activeCount >= SEGMAX)
+            roll();
+    }
+
+    /* Bookings made by one user, oldest first. */
+    public synchronized List<BookingRcd> forUser(int userID) {
+        List<BookingRcd> rcds = byUser.get(userID);
+        return rcds == null ? Collections.<BookingRcd>emptyList() : new ArrayList<BookingRcd>(rcds);
+    }
+
+    /* True if the user already holds a booking on this departure;
+     * time is NO_TIME for regular tickets. */
+    public synchronized boolean hasBooked(int userID, int rID, String day, short time) {
+        List<BookingRcd> rcds = byDeparture.get(departureKey(rID, day, time));
+        if (rcds != null) {
+            for (BookingRcd rcd: rcds)
+                if (rcd.userID == userID)
+                    return true;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return total;
+    }
+
+    /* Import bookings from the old text log into an empty store.
+     * Accepts both "route, user, day" and "route, user, day, time" lines.
+     * The whole file goes into one segment that replaces the empty active one
+     * in a single move, so an import cut short leaves the store empty and is
+     * simply run again on the next start. */
+    public synchronized int importLegacy(String fileName) throws IOException {
+        if (total > 0 || !Files.exists(Paths.get(fileName)))
+            return 0;
+        List<BookingRcd> rcds = new ArrayList<BookingRcd>();
+        for (String line: Files.readAllLines(Paths.get(fileName), StandardCharsets.US_ASCII)) {
+            if (line.trim().isEmpty())
+                continue;
+            String[] f = line.split(",");
+            try {
+                String time = f.length > 3 ? f[3] : null;
+                rcds.add(new BookingRcd(Integer.parseInt(f[0].trim()), Integer.parseInt(f[1].trim()),
+                    time != null, parseDayName(f[2]), parseTime(time)));
+            } catch (RuntimeException ex) {
+                System.err.println("Skipping bad booking line: " + line);
+            }
+        }
+        if (rcds.isEmpty())
+            return 0;
+        active.close();
+        writeSegment(dir.resolve("import.tmp"), activeSeq, activeSeq, rcds);
+        for (BookingRcd rcd: rcds)
+            index(rcd);
+        sealed.put(activeSeq, segPath(activeSeq));
+        openActive(activeSeq + 1);
+        return rcds.size();
+    }
+
+    /* Flush the active segment and wait for any merge in progress to finish. */
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            active.force(true);
+            active.close();
+        }
+    }
+}
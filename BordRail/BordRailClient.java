@@ -1,25 +1,15 @@
 /* BordRail Client - send commands to server to get responses
  * Display reults in a GUI
  */
-import java.io.*;
-import java.net.*;
-import java.util.*;
 import java.awt.*;
 import javax.swing.*;
 import java.awt.event.*;
 
 public class BordRailClient extends JFrame implements ActionListener {
-    private DataOutputStream output;
-    private DataInputStream input;
-    private String host;
-    private int port;
-    private boolean clientRunning;
-    public static final int BUFFSZ = 80;
-    public static final String fieldSep = "#";
-    public static final String endMkr = ">";
+    private BordRailConnection conn;
     //setting up the buttons and text area
     public JButton allBtn, logOutBtn, daysBtn, timesBtn, 
-    costBtn, logInBtn, trmBtn, dwnBtn, ticketBtn, saverBtn;
+    costBtn, logInBtn, trmBtn, dwnBtn, ticketBtn, saverBtn, myBkBtn, rangeBtn;
     public JTextArea screen;
 
     public static void main(String args[])   {
@@ -35,8 +25,7 @@ public class BordRailClient extends JFrame implements ActionListener {
 
     public BordRailClient(String host, int port) {
         super("BordRail Client");
-        this.host = host;   this.port = port;
-        clientRunning = true;
+        conn = new BordRailConnection(host, port);
         //setup the buttons and add event listeners
         allBtn = new JButton("All Routes");             allBtn.addActionListener(this); 
         daysBtn = new JButton("See route days");        daysBtn.addActionListener(this); 
@@ -48,12 +37,14 @@ public class BordRailClient extends JFrame implements ActionListener {
         dwnBtn = new JButton("Down server");            dwnBtn.addActionListener(this);
         ticketBtn = new JButton("Book Ticket");         ticketBtn.addActionListener(this);
         saverBtn = new JButton("Book Saver");           saverBtn.addActionListener(this);
+        myBkBtn = new JButton("My Bookings");           myBkBtn.addActionListener(this);
+        rangeBtn = new JButton("Departures on date");   rangeBtn.addActionListener(this);
         screen = new JTextArea(20,50);                 screen.setEditable(false);
         //setup the panel to hold the buttons
         JPanel p = new JPanel();
         p.setLayout(new GridLayout(2,4));
         p.add(allBtn); p.add(daysBtn); p.add(timesBtn); p.add(costBtn); p.add(logOutBtn); 
-        p.add(logInBtn); p.add(trmBtn); p.add(dwnBtn); p.add(ticketBtn); p.add(saverBtn);
+        p.add(logInBtn); p.add(trmBtn); p.add(dwnBtn); p.add(ticketBtn); p.add(saverBtn); p.add(myBkBtn); p.add(rangeBtn);
         //anchor to top of display
         add(p, BorderLayout.NORTH);
         //fill the rest of the screen
@@ -62,93 +53,77 @@ public class BordRailClient extends JFrame implements ActionListener {
         setSize(800, 600);
         setVisible(true);
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
-        runClient(); //debug code for running from a debugger
     }
     
+    // Connect in the background; replies are shown as they arrive
     public void runClient()    {
-        Socket clientSocket;
-        try {
-            // Creating the socket
-            screen.setText(String.format("Attempting connection to %s\n", host));
-            clientSocket = new Socket(InetAddress.getByName(host), port);
-            screen.append("Connected to: " + clientSocket.getInetAddress().getHostName() + "\n\n");
-            // Setup the input and output streams
-            output = new DataOutputStream(clientSocket.getOutputStream());
-            output.flush();
-            input = new DataInputStream(clientSocket.getInputStream());
-            // Process incoming data while client running
-            byte[] buff = new byte[BUFFSZ];
-            int len;
-            do {
-                len = input.read(buff);
-                if (len > 0){
-                    screen.append(new String(buff, 0, len));
-                    screen.setCaretPosition(screen.getText().length());
-                }
-            } while (clientRunning);
+        screen.setText(String.format("Attempting connection to %s\n", conn.getHostName()));
+        conn.connect().whenComplete((ok, err) -> {
+            if (err != null) {
+                System.err.println(err);
+                display("Could not connect: " + err.getMessage() + "\n\n");
+            }
+            else
+                display("Connected to: " + conn.getHostName() + "\n\n");
+        });
+    }
 
-            //if client sessions ends close all connections
-            screen.append("\nClosing connection.");
-            output.close();
-            input.close();
-            clientSocket.close();
-            dispose(); // close main window
-        }
-        catch (EOFException eof) {
-            System.out.println("Server terminated connection");
-        }
-        catch (Exception e) { //IOException or ConnectException
-            System.err.println(e);
-        }
+    /* Append text on the EDT. Each reply arrives whole, so a large response
+     * costs one append rather than one per network read. */
+    private void display(String txt) {
+        SwingUtilities.invokeLater(() -> {
+            screen.append(txt);
+            screen.setCaretPosition(screen.getDocument().getLength());
+        });
     }
 
     //Process commands from button clicks 
     public void actionPerformed(ActionEvent evt) {
         String cmdStr = null, inputStr = null, inputStr2 = null, inputStr3 = null;
+        String[] fields = {};
         Object src = evt.getSource();
         if (src == allBtn) {
-            cmdStr = "ALLTK"+endMkr;
+            cmdStr = "ALLTK";
         } 
         else if (src ==  daysBtn) {
             inputStr = JOptionPane.showInputDialog("Route ID:");
             if (inputStr == null) return;
-            cmdStr = "TRVL"+fieldSep+inputStr+endMkr;
+            cmdStr = "TRVL"; fields = new String[] {inputStr};
         } 
         else if (src ==  timesBtn) {
             inputStr = JOptionPane.showInputDialog("Route ID:");
             if (inputStr == null) return;
             inputStr2 = JOptionPane.showInputDialog("Day:");
             if (inputStr2 == null) return;
-            cmdStr = "RUN"+fieldSep+inputStr+fieldSep+inputStr2+endMkr;
+            cmdStr = "RUN"; fields = new String[] {inputStr, inputStr2};
         } 
         else if (src ==  costBtn) {
             inputStr = JOptionPane.showInputDialog("Route ID:");
             if (inputStr == null) return;
-            cmdStr = "COST"+fieldSep+inputStr+endMkr;
+            cmdStr = "COST"; fields = new String[] {inputStr};
         } 
         else if (src ==  logOutBtn) {
-            cmdStr = "LOGOUT"+endMkr;
+            cmdStr = "LOGOUT";
         } 
         else if (src == logInBtn) {
             inputStr = JOptionPane.showInputDialog("User ID:");
             if (inputStr == null) return;
             inputStr2 = JOptionPane.showInputDialog("Password:");
             if (inputStr2 == null) return;
-            cmdStr = "LOGIN"+fieldSep+inputStr+fieldSep+inputStr2+endMkr;
+            cmdStr = "LOGIN"; fields = new String[] {inputStr, inputStr2};
         } 
         else if (src == trmBtn) {
-            cmdStr = "TERM"+endMkr;
-            clientRunning = false;
+            cmdStr = "TERM";
         } 
         else if (src == dwnBtn) {
-            cmdStr = "DOWN"+endMkr;
+            cmdStr = "DOWN";
         }
         else if (src == ticketBtn) {
             inputStr = JOptionPane.showInputDialog("Route ID:");
             if (inputStr == null) return;
             inputStr2 = JOptionPane.showInputDialog("Day:");
             if (inputStr2 == null) return;
-            cmdStr = "BKD"+fieldSep+inputStr+fieldSep+inputStr2+endMkr;
+            cmdStr = "BKD"; fields = new String[] {inputStr, inputStr2};
         }
         else if (src == saverBtn) {
             inputStr = JOptionPane.showInputDialog("Route ID:");
@@ -157,17 +132,39 @@ public class BordRailClient extends JFrame implements ActionListener {
             if (inputStr2 == null) return;
             inputStr3 = JOptionPane.showInputDialog("Time:");
             if (inputStr3 == null) return;
-            cmdStr = "BKDT"+fieldSep+inputStr+fieldSep+inputStr2+fieldSep+inputStr3+endMkr;
+            cmdStr = "BKDT"; fields = new String[] {inputStr, inputStr2, inputStr3};
         }
-        if (cmdStr == null) return;
-        try {
-            output.writeBytes(cmdStr);  //send
-            System.out.printf("%d bytes sent\n", cmdStr.length());
-        } 
-        catch (IOException ex) {
-            System.err.println("Error writing object");
+        else if (src == myBkBtn) {
+            cmdStr = "MYBK";
         }
-        screen.setCaretPosition(screen.getText().length());
+        else if (src == rangeBtn) {
+            inputStr = JOptionPane.showInputDialog("Route ID:");
+            if (inputStr == null) return;
+            inputStr2 = JOptionPane.showInputDialog("Date (YYYY-MM-DD):");
+            if (inputStr2 == null) return;
+            inputStr3 = JOptionPane.showInputDialog("From time (HH:MM):");
+            if (inputStr3 == null) return;
+            String inputStr4 = JOptionPane.showInputDialog("To time (HH:MM):");
+            if (inputStr4 == null) return;
+            cmdStr = "RNG"; fields = new String[] {inputStr, inputStr2, inputStr3, inputStr4};
+        }
+        if (cmdStr == null) return;
+        // sent in the background so the EDT never waits on the socket
+        final boolean closing = src == trmBtn;
+        conn.send(cmdStr, fields).whenComplete((reply, err) -> {
+            if (err != null) {
+                System.err.println("Error sending request: " + err);
+                display("Request failed: " + err.getMessage() + "\n\n");
+            }
+            else
+                display(reply);
+            if (closing) {
+                //if client sessions ends close all connections
+                display("\nClosing connection.");
+                conn.close();
+                SwingUtilities.invokeLater(this::dispose); // close main window
+            }
+        });
     }
 
 } 
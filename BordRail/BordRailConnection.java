@@ -0,0 +1,222 @@
+/* BordRailConnection.java - reusable, non-blocking client for the BordRail protocol.
+ *
+ * One socket is opened lazily and reused for every request. Requests are written
+ * in order by a single writer thread and a reader thread completes each reply,
+ * so callers (the GUI or any other service) never block on the network.
+ * The server answers requests strictly in order and ends every reply with
+ * endMkr, so a FIFO queue of pending futures is enough to match replies up.
+ * If the server drops the connection, the next request opens a new one.
+ *
+ * Futures are completed on a callback executor, never on the socket threads,
+ * so a slow callback cannot hold up later replies being read. By default this
+ * is one thread, so callbacks run in the order the replies arrived; a service
+ * can pass its own executor instead.
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BordRailConnection implements Closeable {
+    public static final int BUFFSZ = 80;
+    public static final String fieldSep = "#";
+    public static final String endMkr = ">";
+
+    /* One open socket and the requests waiting for a reply on it.
+     * Once dead, nothing more is queued on it. */
+    private class Link {
+        Socket socket;
+        DataOutputStream output;
+        DataInputStream input;
+        Queue<CompletableFuture<String>> pending = new ConcurrentLinkedQueue<CompletableFuture<String>>();
+        volatile boolean dead = false;
+
+        // Mark the link dead and fail everything still waiting on it
+        synchronized void kill(Throwable t) {
+            dead = true;
+            CompletableFuture<String> f;
+            while ((f = pending.poll()) != null)
+                fail(f, t);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final ExecutorService writer;
+    private final Executor callbacks;
+    private final ExecutorService ownCallbacks;    // null if the caller supplied the executor
+    private volatile Link link;     // only replaced on the writer thread
+    private volatile boolean closed = false;
+
+    public BordRailConnection(String host, int port) {
+        this(host, port, null);
+    }
+
+    /* Complete futures on 'callbacks'; null means use a single private thread. */
+    public BordRailConnection(String host, int port, Executor callbacks) {
+        this.host = host;   this.port = port;
+        writer = Executors.newSingleThreadExecutor(r -> daemon(r, "BordRail-writer"));
+        ownCallbacks = callbacks == null
+            ? Executors.newSingleThreadExecutor(r -> daemon(r, "BordRail-callbacks")) : null;
+        this.callbacks = callbacks == null ? ownCallbacks : callbacks;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    // Complete or fail a future on the callback executor
+    private void deliver(Runnable completion) {
+        try {
+            callbacks.execute(completion);
+        } catch (RejectedExecutionException ex) {  // closed: nothing left to protect
+            completion.run();
+        }
+    }
+
+    private <T> void fail(CompletableFuture<T> f, Throwable t) {
+        deliver(() -> f.completeExceptionally(t));
+    }
+
+    /* Open the connection if it is not already open; safe to call repeatedly,
+     * and a failed attempt is retried by the next call or request. */
+    public CompletableFuture<Void> connect() {
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        submit(done, () -> {
+            open();
+            deliver(() -> done.complete(null));
+        });
+        return done;
+    }
+
+    public String getHostName() {
+        Link l = link;
+        return l == null ? host : l.socket.getInetAddress().getHostName();
+    }
+
+    /* Send a command with its fields; the future completes with the reply text.
+     * Fields may not contain fieldSep or endMkr. */
+    public CompletableFuture<String> send(String cmd, String... fields) {
+        final CompletableFuture<String> reply = new CompletableFuture<String>();
+        for (String f: fields) {
+            if (f.contains(fieldSep) || f.contains(endMkr)) {
+                reply.completeExceptionally(new IllegalArgumentException(
+                    "Field may not contain '" + fieldSep + "' or '" + endMkr + "': " + f));
+                return reply;
+            }
+        }
+        if (cmd.contains(fieldSep) || cmd.contains(endMkr)) {
+            reply.completeExceptionally(new IllegalArgumentException("Bad command: " + cmd));
+            return reply;
+        }
+        StringBuilder sb = new StringBuilder(cmd);
+        for (String f: fields)
+            sb.append(fieldSep).append(f);
+        final String cmdStr = sb.append(endMkr).toString();
+        // the writer runs tasks one at a time in submission order, so requests go out in order
+        submit(reply, () -> {
+            Link l = open();
+            synchronized (l) {
+                if (l.dead)
+                    throw new IOException("Connection lost");
+                // queue before writing so the reader can never see an unmatched reply
+                l.pending.add(reply);
+            }
+            try {
+                l.output.writeBytes(cmdStr);
+                l.output.flush();
+            } catch (IOException ex) {
+                l.pending.remove(reply);
+                throw ex;
+            }
+        });
+        return reply;
+    }
+
+    private interface WriterTask {
+        void run() throws IOException;
+    }
+
+    // Run a task on the writer thread, failing 'result' if it cannot be run or throws
+    private void submit(CompletableFuture<?> result, WriterTask task) {
+        try {
+            writer.execute(() -> {
+                try {
+                    if (closed)
+                        throw new IOException("Connection closed");
+                    task.run();
+                } catch (IOException ex) {
+                    fail(result, ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {  // writer already shut down
+            fail(result, new IOException("Connection closed"));
+        }
+    }
+
+    // Runs on the writer thread; returns the current link, opening a new one if needed
+    private Link open() throws IOException {
+        Link l = link;
+        if (l != null && !l.dead)
+            return l;
+        l = new Link();
+        l.socket = new Socket(InetAddress.getByName(host), port);
+        l.socket.setTcpNoDelay(true);
+        l.output = new DataOutputStream(new BufferedOutputStream(l.socket.getOutputStream()));
+        l.input = new DataInputStream(l.socket.getInputStream());
+        link = l;
+        final Link reading = l;
+        Thread reader = new Thread(() -> readReplies(reading), "BordRail-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return l;
+    }
+
+    // Collect incoming bytes and hand each complete reply to the oldest pending request
+    private void readReplies(Link l) {
+        byte[] buff = new byte[BUFFSZ];
+        StringBuilder reply = new StringBuilder();
+        int len;
+        try {
+            while ((len = l.input.read(buff)) > 0) {
+                reply.append(new String(buff, 0, len));
+                int end;
+                while ((end = reply.indexOf(endMkr)) >= 0) {
+                    CompletableFuture<String> next = l.pending.poll();
+                    final String text = reply.substring(0, end);
+                    if (next != null)
+                        deliver(() -> next.complete(text));
+                    reply.delete(0, end + endMkr.length());
+                }
+            }
+            l.kill(new EOFException("Server terminated connection"));
+        } catch (IOException ex) {
+            l.kill(ex);
+        }
+        try {
+            l.socket.close();
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+
+    /* Close the socket; any request still waiting for a reply fails. */
+    public void close() {
+        closed = true;
+        writer.shutdown();
+        Link l = link;
+        if (l != null) {
+            try {
+                l.socket.close();
+            } catch (IOException ex) {
+                System.err.println(ex);
+            }
+            l.kill(new IOException("Connection closed"));
+        }
+        // callbacks already queued still run
+        if (ownCallbacks != null)
+            ownCallbacks.shutdown();
+    }
+}
@@ -7,6 +7,8 @@
 import java.io.*;   
 import java.net.*;  
 import java.util.*; 
+import java.time.*;
+import java.time.format.DateTimeParseException;
 
 public class BordRailServer {
 
@@ -40,16 +42,43 @@ public class BordRailServer {
         }
     }
 
+    /* A repeating departure: runs at 'time' on every day in the 'days' mask
+     * between 'from' and 'until' inclusive. Dated departures are worked out
+     * from this when queried rather than stored one row per day. */
     class TimetableRcd {
         int rID;
-        String day, time;
+        int days;       // one bit per DayOfWeek, Monday is bit 0
+        int time;       // minutes after midnight
+        LocalDate from, until;
 
-        public TimetableRcd (int r, String d, String t){
-            rID = r; day = d; time = t;
+        public TimetableRcd (int r, int d, int t, LocalDate f, LocalDate u){
+            rID = r; days = d; time = t; from = f; until = u;
+        }
+
+        public boolean runsOn(DayOfWeek day) {
+            return day != null && (days & dayBit(day)) != 0;
+        }
+
+        // True if today falls within the validity period
+        public boolean isCurrent() {
+            LocalDate today = LocalDate.now();
+            return !from.isAfter(today) && !until.isBefore(today);
+        }
+
+        public boolean runsOn(LocalDate date) {
+            return !date.isBefore(from) && !date.isAfter(until) && runsOn(date.getDayOfWeek());
         }
 
         public String toString() {
-            return String.format("%d %s %s", rID, day, time);
+            String rcd = String.format("%d %s %s", rID, dayNames(days), timeStr(time));
+            boolean hasFrom = !from.equals(LocalDate.MIN), hasUntil = !until.equals(LocalDate.MAX);
+            if (hasFrom && hasUntil)
+                return String.format("%s (%s to %s)", rcd, from, until);
+            if (hasFrom)
+                return String.format("%s (from %s)", rcd, from);
+            if (hasUntil)
+                return String.format("%s (until %s)", rcd, until);
+            return rcd;
         }
     }
 
@@ -60,13 +89,16 @@ public class BordRailServer {
     private ArrayList<UserRcd> userData = new ArrayList<UserRcd>();
     private ArrayList<RouteRcd> routeData = new ArrayList<RouteRcd>();
     private ArrayList<TimetableRcd> tTableData = new ArrayList<TimetableRcd>();
+    // timetable entries per route, sorted by departure time
+    private HashMap<Integer, TreeMap<Integer, List<TimetableRcd>>> tTableIndex =
+        new HashMap<Integer, TreeMap<Integer, List<TimetableRcd>>>();
+    private BookingStore bookings;
 
     /************************** Other global data ***************************/
     private ServerSocket servSocket = null;
     private ArrayList<Thread> serviceThreads = new ArrayList<Thread>();
     private int connCount = 0;
     private boolean serverUp = false;
-    private int userID = 0;
 
     /**************************** MAIN ***************************/
     public static void main(String[] args) {
@@ -99,6 +131,10 @@ public class BordRailServer {
             System.out.println(rcd);
         System.out.println();
 
+        loadBookings();
+        System.out.printf("%d booking records read\n", bookings.size());
+        System.out.println();
+
         runServer(port);
     }
 
@@ -138,15 +174,32 @@ public class BordRailServer {
         }
     }
 
-    // Populate ArrayList of timetable entries from file
+    /* Populate ArrayList of timetable entries from file, one per line:
+     *   route, days, time [, valid from, valid until]
+     * where days is a day name, several joined with '/', or "Daily", and the
+     * optional validity dates are YYYY-MM-DD. */
     private void loadTimetable() {
         try {
-            Scanner file = new Scanner(new BufferedReader(new FileReader("timetable.txt")));
-            file.useDelimiter("[,\\n]");
-            while (file.hasNext()) {
-                int rID = file.nextInt();
-                String day = file.next().trim(), time = file.next().trim(); 
-                tTableData.add(new TimetableRcd(rID, day, time));
+            BufferedReader file = new BufferedReader(new FileReader("timetable.txt"));
+            String line;
+            while ((line = file.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                String[] f = line.split(",");
+                try {
+                    int rID = Integer.parseInt(f[0].trim());
+                    int days = parseDays(f[1].trim()), time = toMinutes(f[2].trim());
+                    LocalDate from = f.length > 3 ? LocalDate.parse(f[3].trim()) : LocalDate.MIN;
+                    LocalDate until = f.length > 4 ? LocalDate.parse(f[4].trim()) : LocalDate.MAX;
+                    if (days == 0 || time < 0 || from.isAfter(until))
+                        throw new IllegalArgumentException();
+                    TimetableRcd rcd = new TimetableRcd(rID, days, time, from, until);
+                    tTableData.add(rcd);
+                    tTableIndex.computeIfAbsent(rID, k -> new TreeMap<Integer, List<TimetableRcd>>())
+                        .computeIfAbsent(time, k -> new ArrayList<TimetableRcd>()).add(rcd);
+                } catch (RuntimeException ex) {
+                    System.err.println("Skipping bad timetable line: " + line);
+                }
             }
             file.close();
         } catch(IOException ex) {
@@ -154,6 +207,75 @@ public class BordRailServer {
         }
     }
 
+    // Bit for a day in a TimetableRcd days mask
+    private static int dayBit(DayOfWeek day) {
+        return 1 << (day.getValue() - 1);
+    }
+
+    // Day name as typed by a client, e.g. "monday"; null if not a day
+    private static DayOfWeek parseDay(String day) {
+        try {
+            return DayOfWeek.valueOf(day.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // Days mask from "Monday", "Monday/Friday" or "Daily"; 0 if any day is not recognised
+    private static int parseDays(String days) {
+        if (days.equalsIgnoreCase("Daily"))
+            return 0x7F;
+        int mask = 0;
+        for (String d: days.split("/")) {
+            DayOfWeek day = parseDay(d);
+            if (day == null)
+                return 0;
+            mask |= dayBit(day);
+        }
+        return mask;
+    }
+
+    private static String dayName(DayOfWeek day) {
+        String n = day.toString();
+        return n.charAt(0) + n.substring(1).toLowerCase();
+    }
+
+    private static String dayNames(int days) {
+        StringJoiner names = new StringJoiner("/");
+        for (DayOfWeek day: DayOfWeek.values())
+            if ((days & dayBit(day)) != 0)
+                names.add(dayName(day));
+        return names.toString();
+    }
+
+    // "HH:MM" to minutes after midnight; -1 if not a valid time
+    private static int toMinutes(String time) {
+        String[] hm = time.trim().split(":");
+        try {
+            int h = Integer.parseInt(hm[0]), m = Integer.parseInt(hm[1]);
+            return (hm.length == 2 && h >= 0 && h < 24 && m >= 0 && m < 60) ? h * 60 + m : -1;
+        } catch (RuntimeException ex) {
+            return -1;
+        }
+    }
+
+    private static String timeStr(int minutes) {
+        return String.format("%02d:%02d", minutes / 60, minutes % 60);
+    }
+
+    // Open the booking store, importing the old bookings.txt log the first time
+    private void loadBookings() {
+        try {
+            bookings = new BookingStore("bookings");
+            int ct = bookings.importLegacy("bookings.txt");
+            if (ct > 0)
+                System.out.printf("%d bookings imported from bookings.txt\n", ct);
+        } catch(IOException ex) {
+            System.err.println("Could not open bookings store");
+            throw new UncheckedIOException(ex);
+        }
+    }
+
     // Save ArrayList of score records to file
     private void saveScores() {
         int ct = 0;
@@ -201,6 +323,11 @@ public class BordRailServer {
         Scanner console = new Scanner(System.in);
         System.out.println("Once all service threads are finished, ENTER to confirm shutdown");
         console.nextLine();
+        try {
+            bookings.close();
+        } catch(IOException ex) {
+            System.err.println("Could not close bookings store");
+        }
     }
 
     // The server thread class
@@ -209,6 +336,7 @@ public class BordRailServer {
         private DataOutputStream output;
         private DataInputStream input;
         boolean loggedIn;
+        int userID;
 
         ServiceThread(Socket c, int sID) { //constructor
             conn = c;
@@ -221,7 +349,7 @@ public class BordRailServer {
         public void run() {
             byte[] buffer = new byte[BUFFSZ];
             int len=0;
-            String recStg;
+            String recStg, nextStg = "";
             String[] recData;
             try {
                 System.out.printf("Thread %s serving client %s\n",
@@ -233,19 +361,32 @@ public class BordRailServer {
 
                 boolean running = true;
                 while(running) {
-                    recStg = new String();
-                    do {
+                    // clients may pipeline requests, so keep anything after the end marker
+                    recStg = nextStg;
+                    while (!recStg.contains(endMkr) && recStg.length() < BUFFSZ) {
                         len = input.read(buffer);
+                        if (len < 0)
+                            throw new EOFException("client closed connection");
                         System.out.printf("%d bytes received\n", len);
                         recStg += new String(buffer, 0, len);
-                    } while (!recStg.contains(endMkr) && recStg.length() < BUFFSZ);
+                    }
+                    // no request is this long, so the client is not speaking the protocol
+                    if (!recStg.contains(endMkr)) {
+                        System.err.println("Request too long, closing connection");
+                        sendMsg(output, "Request too long.");
+                        output.writeBytes(endMkr);
+                        output.flush();
+                        break;
+                    }
+                    nextStg = recStg.substring(recStg.indexOf(endMkr) + endMkr.length());
                     recData = recStg.substring(0, recStg.indexOf(endMkr)).split(fieldSep);
                     String recMsg = recData[0];
 
                     switch (recMsg) {
                         case "LOGIN": {
                             try {
-                                loggedIn = login(Integer.parseInt(recData[1]), recData[2], output);
+                                userID = login(Integer.parseInt(recData[1]), recData[2], output);
+                                loggedIn = userID != 0;
                             } 
                             catch (ArrayIndexOutOfBoundsException ex) {
                                 System.err.println("missing login details from client");
@@ -292,6 +433,22 @@ public class BordRailServer {
                             }
                         }
                         break;
+                        case "RNG": {
+                            try {
+                                sendRange(output, Integer.parseInt(recData[1]), LocalDate.parse(recData[2]),
+                                    toMinutes(recData[3]), toMinutes(recData[4]));
+                            } 
+                            catch (ArrayIndexOutOfBoundsException ex) {
+                                System.err.println("Client data missing route id, date or times");
+                            }
+                            catch (NumberFormatException e) {
+                                sendMsg(output,"Route ID should be a number");
+                            }
+                            catch (DateTimeParseException e) {
+                                sendMsg(output,"Date should be YYYY-MM-DD");
+                            }
+                        }
+                        break;
                         case "COST": {
                             try {
                                 sendCost(output, Integer.parseInt(recData[1]));
@@ -307,7 +464,10 @@ public class BordRailServer {
                         case "BKD": {
                             if (loggedIn) {
                                 try {
-                                    bookTicket(output, Integer.parseInt(recData[1]),recData[2]);
+                                    bookTicket(output, userID, Integer.parseInt(recData[1]),recData[2]);
+                                }
+                                catch (ArrayIndexOutOfBoundsException ex) {
+                                    System.err.println("Client data missing booking details");
                                 }
                                 catch (NumberFormatException e) {
                                     sendMsg(output,"Route ID should be a number");
@@ -320,7 +480,10 @@ public class BordRailServer {
                         case "BKDT": {
                             if (loggedIn) {
                                 try {
-                                    bookSaverTicket(output, Integer.parseInt(recData[1]), recData[2], recData[3]);
+                                    bookSaverTicket(output, userID, Integer.parseInt(recData[1]), recData[2], recData[3]);
+                                }
+                                catch (ArrayIndexOutOfBoundsException ex) {
+                                    System.err.println("Client data missing booking details");
                                 }
                                 catch (NumberFormatException e) {
                                     sendMsg(output,"Route ID should be a number");
@@ -330,6 +493,13 @@ public class BordRailServer {
                                 sendMsg(output, "You need to be logged in.");
                         }
                         break;
+                        case "MYBK": {
+                            if (loggedIn)
+                                sendMyBookings(output, userID);
+                            else 
+                                sendMsg(output, "You need to be logged in.");
+                        }
+                        break;
                         case "TERM": {
                             loggedIn = false;
                             running = false;
@@ -351,6 +521,9 @@ public class BordRailServer {
                         }
                         break;
                     }
+                    // every reply ends with the marker so clients can match it to its request
+                    output.writeBytes(endMkr);
+                    output.flush();
                 } 
                 input.close(); 
                 output.close(); 
@@ -368,9 +541,9 @@ public class BordRailServer {
         }
     }
 
-    //function to authenticate a user
-    private boolean login(int usrID, String pwd, DataOutputStream output) throws IOException {
-        boolean loggedIn = false;
+    //function to authenticate a user; returns the user ID, or 0 if login failed
+    private int login(int usrID, String pwd, DataOutputStream output) throws IOException {
+        int userID = 0;
         int count = 0;
         String error = "";
         System.out.printf("Login %s: %s\n", usrID, pwd);
@@ -378,7 +551,6 @@ public class BordRailServer {
             if (usr.userID == usrID) {
                 if (usr.pwd.equals(pwd)) {
                     output.writeBytes("\nLogged in as: " + usr.name);
-                    loggedIn = true;
                     userID = usr.userID;
                     count++;
                 }
@@ -392,7 +564,7 @@ public class BordRailServer {
         }
         output.writeBytes(error + "\n");
         output.flush();
-        return loggedIn;
+        return userID;
     }
 
     /********************* Helper Methods to respond to client commands **********************/
@@ -416,19 +588,17 @@ public class BordRailServer {
 
     /* Send day(s) matching a route id to a client; send a message if no match. */
     private synchronized void sendTimetable(DataOutputStream output, int rID) throws IOException {
-        int count = 0;
-        List<String> days = new ArrayList<String>();
+        int days = 0;
         output.writeBytes("Day Information for: " + rID + "\n");
         for (TimetableRcd rcd: tTableData) {
-            if (rcd.rID == rID) {
-                count++;
-                if (!days.contains(rcd.day)) {
-                    days.add(rcd.day);
-                    output.writeBytes((rcd.day+"\n"));
-                }
-            }
+            if (rcd.rID == rID && rcd.isCurrent())
+                days |= rcd.days;
         }
-        if (count == 0)
+        for (DayOfWeek day: DayOfWeek.values()) {
+            if ((days & dayBit(day)) != 0)
+                output.writeBytes((dayName(day)+"\n"));
+        }
+        if (days == 0)
             output.writeBytes(("route has no timetable information\n"));
         output.writeBytes("\n");
         output.flush();
@@ -454,11 +624,18 @@ public class BordRailServer {
     /* Send time(s) matching a route id to a client */
     private synchronized void sendDayTime(DataOutputStream output, int rID, String day) throws IOException {
         int count = 0;
+        DayOfWeek dow = parseDay(day);
         output.writeBytes("Time Information for: "+rID+" on: "+day+"\n");
-        for (TimetableRcd rcd: tTableData) {
-            if (rcd.rID == rID  && rcd.day.equals(day)) {
-                output.writeBytes((rcd.time+"\n"));
-                count++;
+        TreeMap<Integer, List<TimetableRcd>> times = tTableIndex.get(rID);
+        if (times != null) {
+            for (List<TimetableRcd> rcds: times.values()) {
+                for (TimetableRcd rcd: rcds) {
+                    if (rcd.runsOn(dow) && rcd.isCurrent()) {
+                        output.writeBytes((timeStr(rcd.time)+"\n"));
+                        count++;
+                        break;
+                    }
+                }
             }
         }
         if (count == 0) {
@@ -468,9 +645,42 @@ public class BordRailServer {
         output.flush();
     }
 
-    private synchronized void bookTicket (DataOutputStream output, int rID, String day) throws IOException {
+    /* Send the dated departures on a route between two times (inclusive) on one date.
+     * Only the entries in the time range are looked at, then checked against the date. */
+    private synchronized void sendRange(DataOutputStream output, int rID, LocalDate date, int from, int to) throws IOException {
+        if (from < 0 || to < 0) {
+            sendMsg(output, "Times should be HH:MM");
+            return;
+        }
+        if (from > to) {
+            sendMsg(output, "From time should not be after to time");
+            return;
+        }
+        int count = 0;
+        output.writeBytes(String.format("Departures for: %d on: %s %s between %s and %s\n",
+            rID, dayName(date.getDayOfWeek()), date, timeStr(from), timeStr(to)));
+        TreeMap<Integer, List<TimetableRcd>> times = tTableIndex.get(rID);
+        if (times != null) {
+            for (List<TimetableRcd> rcds: times.subMap(from, true, to, true).values()) {
+                for (TimetableRcd rcd: rcds) {
+                    if (rcd.runsOn(date)) {
+                        output.writeBytes(String.format("%s %s\n", date, timeStr(rcd.time)));
+                        count++;
+                        break;
+                    }
+                }
+            }
+        }
+        if (count == 0)
+            output.writeBytes(("no departures in that time range\n"));
+        output.writeBytes("\n");
+        output.flush();
+    }
+
+    private synchronized void bookTicket (DataOutputStream output, int userID, int rID, String day) throws IOException {
         int count = 0;
         boolean saver = true, booked = false;
+        DayOfWeek dow = parseDay(day);
         output.writeBytes("\n");
         for (RouteRcd rcd: routeData) {
             if (rcd.rID == rID) {
@@ -478,16 +688,12 @@ public class BordRailServer {
             }
         }
         for (TimetableRcd rcd: tTableData) {
-            if (rcd.rID == rID  && rcd.day.equals(day) && !saver) {
+            if (rcd.rID == rID  && rcd.runsOn(dow) && rcd.isCurrent() && !saver) {
                 count++;
                 if (!booked) {
                     booked = true;
-                    String outTxt = String.format("%d, %d, %s\n",rID, userID, day);
-                    try(FileWriter fw = new FileWriter("bookings.txt", true);
-                    BufferedWriter bw = new BufferedWriter(fw);
-                    PrintWriter out = new PrintWriter(bw))
-                    {
-                        out.println(outTxt);
+                    try {
+                        bookings.add(new BookingStore.BookingRcd(rID, userID, false, dayName(dow), BookingStore.NO_TIME));
                         output.writeBytes(("ticket has been booked."));
                     } catch (IOException e) {
                         output.writeBytes(("Error occured trying to save the booking, please try again.\n"));
@@ -504,9 +710,11 @@ public class BordRailServer {
         output.flush();
     }
 
-    private synchronized void bookSaverTicket (DataOutputStream output, int rID, String day, String time) throws IOException {
+    private synchronized void bookSaverTicket (DataOutputStream output, int userID, int rID, String day, String time) throws IOException {
         int count = 0;
         boolean saver = false;
+        DayOfWeek dow = parseDay(day);
+        int mins = toMinutes(time);
         output.writeBytes("\n");
         for (RouteRcd rcd: routeData) {
             if (rcd.rID == rID) {
@@ -514,18 +722,15 @@ public class BordRailServer {
             }
         }
         for (TimetableRcd rcd: tTableData) {
-            if (rcd.rID == rID  && rcd.day.equals(day) && rcd.time.equals(time) && saver) {
-                String outTxt = String.format("%d, %d, %s, %s \n",rID, userID, day, time);
-                try(FileWriter fw = new FileWriter("bookings.txt", true);
-                BufferedWriter bw = new BufferedWriter(fw);
-                PrintWriter out = new PrintWriter(bw))
-                {
-                    out.println(outTxt);
+            if (rcd.rID == rID  && rcd.runsOn(dow) && rcd.time == mins && rcd.isCurrent() && saver) {
+                try {
+                    bookings.add(new BookingStore.BookingRcd(rID, userID, true, dayName(dow), (short) mins));
                     output.writeBytes(("Ticket has been booked.\n"));
                 } catch (IOException e) {
                     output.writeBytes(("Error occured trying to save the booking, please try again.\n"));
                 }
                 count++;
+                break;  // one ticket even if the departure is listed twice
             }
 
         }
@@ -536,5 +741,17 @@ public class BordRailServer {
         output.writeBytes("\n");
         output.flush();
     }
-}
 
+    /* Send the logged in user's bookings, read from the per-user index */
+    private void sendMyBookings(DataOutputStream output, int userID) throws IOException {
+        List<BookingStore.BookingRcd> rcds = bookings.forUser(userID);
+        output.writeBytes("Bookings for user: " + userID + "\n");
+        for (BookingStore.BookingRcd rcd: rcds) {
+            output.writeBytes(String.format("%s (%s)\n", rcd, rcd.saver ? "saver" : "regular"));
+        }
+        if (rcds.isEmpty())
+            output.writeBytes("no bookings found\n");
+        output.writeBytes("\n");
+        output.flush();
+    }
+}